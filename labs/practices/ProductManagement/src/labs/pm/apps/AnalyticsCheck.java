@@ -0,0 +1,235 @@
+/*
+ * License along with this program.
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Copyright (c)  2024.
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * If not, see<http://www.gnu.org/licenses/>
+ */
+
+package labs.pm.apps;
+
+import labs.pm.data.*;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * {@code AnalyticsCheck} class represents an application that checks
+ * {@link CatalogAnalytics} against a naive sequential
+ * {@code keySet().stream()} and {@code BigDecimal} implementation.
+ * <br>
+ * Every query is compared in {@link CatalogAnalytics#sequential() sequential}
+ * and {@link CatalogAnalytics#parallel() parallel} mode, on a catalog with
+ * sub-cent prices and tied review counts, and then timed against the
+ * naive version. Every query goes through {@code pm.getAnalytics()},
+ * so the timings are what a caller gets, and the queries are checked
+ * again after more reviews. The catalog size can be passed as the
+ * first argument.
+ * @version 4.0
+ * @author marwan
+ **/
+public class AnalyticsCheck {
+
+    private static final int WARMUP_RUNS = 3;
+    private static final int TIMED_RUNS = 5;
+    private static final int TOP = 100;
+
+    private static boolean passed = true;
+
+    public static void main(String[] args) {
+        int size = (args.length > 0) ? Integer.parseInt(args[0]) : 1_000_000;
+
+        checkSubCentPrices();
+
+        ProductManager pm = new ProductManager("en-GB");
+        Map<Product, Integer> reviews = createCatalog(pm, size);
+
+        System.out.printf("%-28s %6s %10s %10s %10s %8s%n",
+                "query", "result", "naive ms", "seq ms", "par ms", "speedup");
+        checkQueries(pm, reviews, size, true);
+
+        reviewMore(pm, reviews);
+        checkQueries(pm, reviews, size, false);
+
+        System.out.println(passed ? "all results match" : "results differ");
+    }
+
+    /**
+     * Compares every query, each run from start to finish through
+     * {@code pm.getAnalytics()}, and optionally prints their timings
+     **/
+    private static void checkQueries(ProductManager pm, Map<Product, Integer> reviews,
+                                     int size, boolean timed) {
+        compare("getAveragePriceByRating", timed,
+                () -> pm.getAnalytics().sequential().getAveragePriceByRating(),
+                () -> pm.getAnalytics().getAveragePriceByRating(),
+                () -> averagePriceByRating(reviews));
+        compare("getReviewCountByType", timed,
+                () -> pm.getAnalytics().sequential().getReviewCountByType(),
+                () -> pm.getAnalytics().getReviewCountByType(),
+                () -> reviewCountByType(reviews));
+        compare("getBestBeforeDistribution", timed,
+                () -> pm.getAnalytics().sequential().getBestBeforeDistribution(),
+                () -> pm.getAnalytics().getBestBeforeDistribution(),
+                () -> bestBeforeDistribution(reviews));
+        compare("getMostReviewed(" + TOP + ")", timed,
+                () -> pm.getAnalytics().sequential().getMostReviewed(TOP),
+                () -> pm.getAnalytics().getMostReviewed(TOP),
+                () -> mostReviewed(reviews, TOP));
+        compare("getMostReviewed(all)", timed,
+                () -> pm.getAnalytics().sequential().getMostReviewed(size),
+                () -> pm.getAnalytics().getMostReviewed(size),
+                () -> mostReviewed(reviews, size));
+    }
+
+    /**
+     * Two products at 1.005 average to 1.01 with HALF_UP rounding,
+     * which is lost if prices are rounded to cents before summing
+     **/
+    private static void checkSubCentPrices() {
+        ProductManager pm = new ProductManager("en-GB");
+        pm.parseProduct("D,1,Tea,1.005,1,2024-01-01");
+        pm.parseProduct("D,2,Coffee,1.005,1,2024-01-01");
+        CatalogAnalytics analytics = pm.getAnalytics();
+        Map<Rating, BigDecimal> expected = Map.of(Rating.ONE_STAR, new BigDecimal("1.01"));
+        boolean match = expected.equals(analytics.sequential().getAveragePriceByRating())
+                && expected.equals(analytics.parallel().getAveragePriceByRating());
+        passed &= match;
+        System.out.println("sub-cent average " + (match ? "ok" : "FAILED"));
+    }
+
+    /**
+     * Creates a mix of food and drinks, every fifth priced in tenths of a
+     * cent, with zero to three reviews each so that review counts tie
+     * @return review count of every product, mirroring the catalog
+     **/
+    private static Map<Product, Integer> createCatalog(ProductManager pm, int size) {
+        SplittableRandom random = new SplittableRandom(42);
+        LocalDate today = LocalDate.now();
+        Map<Product, Integer> reviews = new HashMap<>();
+        for (int id = 1; id <= size; id++) {
+            BigDecimal price = (id % 5 == 0)
+                    ? BigDecimal.valueOf(random.nextInt(1000, 100000), 3)
+                    : BigDecimal.valueOf(random.nextInt(100, 10000), 2);
+            Product product = random.nextBoolean()
+                    ? pm.createProduct(id, "Food " + id, price, Rating.NOT_RATED,
+                            today.plusDays(random.nextInt(0, 365)))
+                    : pm.createProduct(id, "Drink " + id, price, Rating.NOT_RATED);
+            int count = random.nextInt(0, 4);
+            for (int i = 0; i < count; i++) {
+                product = pm.reviewProduct(product,
+                        Rateable.convert(random.nextInt(1, 6)), "Review " + i);
+            }
+            reviews.put(product, count);
+        }
+        return reviews;
+    }
+
+    private static void compare(String query, boolean timed, Supplier<?> sequential,
+                                Supplier<?> parallel, Supplier<?> naive) {
+        Object expected = naive.get();
+        boolean match = expected.equals(sequential.get()) && expected.equals(parallel.get());
+        passed &= match;
+        if (!timed) {
+            System.out.printf("%-28s %6s after more reviews%n", query, match ? "ok" : "FAILED");
+            return;
+        }
+
+        double naiveMs = time(naive);
+        double sequentialMs = time(sequential);
+        double parallelMs = time(parallel);
+        System.out.printf("%-28s %6s %10.1f %10.1f %10.1f %7.1fx%n",
+                query, match ? "ok" : "FAILED",
+                naiveMs, sequentialMs, parallelMs, naiveMs / parallelMs);
+    }
+
+    /**
+     * Reviews every tenth product once more, so that the queries must
+     * see ratings and review counts changed after they were first run
+     **/
+    private static void reviewMore(ProductManager pm, Map<Product, Integer> reviews) {
+        SplittableRandom random = new SplittableRandom(7);
+        for (Product product : List.copyOf(reviews.keySet())) {
+            if (product.getId() % 10 == 0) {
+                int count = reviews.remove(product) + 1;
+                reviews.put(pm.reviewProduct(product,
+                        Rateable.convert(random.nextInt(1, 6)), "Again"), count);
+            }
+        }
+    }
+
+    /**
+     * @return median time of the timed runs in milliseconds
+     **/
+    private static double time(Supplier<?> query) {
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            query.get();
+        }
+        long[] times = new long[TIMED_RUNS];
+        for (int i = 0; i < TIMED_RUNS; i++) {
+            long start = System.nanoTime();
+            query.get();
+            times[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(times);
+        return times[TIMED_RUNS / 2] / 1e6;
+    }
+
+    private static Map<Rating, BigDecimal> averagePriceByRating(Map<Product, Integer> reviews) {
+        return reviews.keySet()
+                .stream()
+                .collect(Collectors.groupingBy(
+                        Product::getRating,
+                        () -> new EnumMap<>(Rating.class),
+                        Collectors.teeing(
+                                Collectors.reducing(BigDecimal.ZERO, Product::getPrice, BigDecimal::add),
+                                Collectors.counting(),
+                                (sum, count) -> sum.divide(BigDecimal.valueOf(count), 2, RoundingMode.HALF_UP))));
+    }
+
+    private static Map<Class<? extends Product>, Long> reviewCountByType(Map<Product, Integer> reviews) {
+        Map<Class<? extends Product>, Long> counts = new HashMap<>(Map.of(Food.class, 0L, Drink.class, 0L));
+        counts.putAll(reviews.keySet()
+                .stream()
+                .collect(Collectors.groupingBy(
+                        Product::getClass,
+                        Collectors.summingLong(reviews::get))));
+        return counts;
+    }
+
+    private static SortedMap<LocalDate, Long> bestBeforeDistribution(Map<Product, Integer> reviews) {
+        return reviews.keySet()
+                .stream()
+                .filter(product -> product instanceof Food)
+                .collect(Collectors.groupingBy(
+                        Product::getBestBefore,
+                        TreeMap::new,
+                        Collectors.counting()));
+    }
+
+    private static List<Product> mostReviewed(Map<Product, Integer> reviews, int limit) {
+        return reviews.keySet()
+                .stream()
+                .sorted(Comparator.comparing((Function<Product, Integer>) reviews::get)
+                        .reversed()
+                        .thenComparingInt(Product::getId))
+                .limit(limit)
+                .toList();
+    }
+}
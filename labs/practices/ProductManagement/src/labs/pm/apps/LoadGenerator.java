@@ -0,0 +1,546 @@
+/*
+ * License along with this program.
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Copyright (c)  2024.
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * If not, see<http://www.gnu.org/licenses/>
+ */
+
+package labs.pm.apps;
+
+import labs.pm.data.*;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@code LoadGenerator} class represents an application that drives a
+ * {@link ProductManager} with a synthetic workload for a fixed duration
+ * and reports throughput, latency percentiles and heap/GC statistics.
+ * <br>
+ * Default settings are read from {@code labs.pm.apps.loadgen} and can be
+ * overridden with {@code key=value} arguments, for example
+ * {@code threads=64 threads.virtual=true duration=PT30M}
+ * <br>
+ * {@code ProductManager} is not thread safe, so lookups share a read lock
+ * while reviews and locale switching reports take the write lock.
+ * Recorded latencies include the time spent waiting for that lock.
+ * @version 4.0
+ * @author marwan
+ **/
+public class LoadGenerator {
+
+    private static final Logger logger =
+            Logger.getLogger(LoadGenerator.class.getName());
+
+    private static final String[] COMMENTS = {
+            "Nice", "Rather weak", "Fine", "Good", "Perfect", "Just add some lemon"};
+
+    private enum Operation {FIND, REVIEW, REPORT}
+
+    public static void main(String[] args) {
+        Settings settings = Settings.load(args);
+        ProductManager pm = new ProductManager(settings.locales[0]);
+        int[] hotIds = createCatalog(pm, settings);
+        System.out.println(settings);
+
+        Result result = run(pm, settings, hotIds);
+        System.out.println(result);
+    }
+
+    /**
+     * Creates the catalog and shuffles its ids with the configured seed,
+     * so that the hottest products are not simply the lowest ids, which
+     * come first when {@code ProductManager} scans its products
+     * @return product ids ordered from the hottest to the coldest
+     **/
+    private static int[] createCatalog(ProductManager pm, Settings settings) {
+        SplittableRandom random = new SplittableRandom(settings.seed);
+        LocalDate today = LocalDate.now();
+        int[] hotIds = new int[settings.catalogSize];
+        for (int id = 1; id <= settings.catalogSize; id++) {
+            hotIds[id - 1] = id;
+            BigDecimal price = BigDecimal.valueOf(random.nextInt(100, 10000), 2);
+            if (random.nextDouble() < settings.foodRatio) {
+                pm.createProduct(id, "Food " + id, price, Rating.NOT_RATED,
+                        today.plusDays(random.nextInt(0, 30)));
+            } else {
+                pm.createProduct(id, "Drink " + id, price, Rating.NOT_RATED);
+            }
+        }
+        for (int i = hotIds.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int id = hotIds[i];
+            hotIds[i] = hotIds[j];
+            hotIds[j] = id;
+        }
+        return hotIds;
+    }
+
+    private static Result run(ProductManager pm, Settings settings, int[] hotIds) {
+        ReadWriteLock lock = new ReentrantReadWriteLock();
+        ZipfianSampler products = new ZipfianSampler(settings.catalogSize, settings.reviewSkew);
+        SplittableRandom seeds = new SplittableRandom(settings.seed + 1);
+        HeapSampler heap = new HeapSampler();
+
+        long start = System.nanoTime();
+        long measureFrom = start + settings.warmup.toNanos();
+        long deadline = measureFrom + settings.duration.toNanos();
+
+        List<Future<Worker>> futures = new ArrayList<>();
+        try (ExecutorService executor = settings.virtualThreads
+                ? Executors.newVirtualThreadPerTaskExecutor()
+                : Executors.newFixedThreadPool(settings.threads)) {
+            for (int i = 0; i < settings.threads; i++) {
+                Worker worker = new Worker(pm, lock, settings, products, hotIds,
+                        seeds.split(), measureFrom, deadline);
+                futures.add(executor.submit(worker));
+            }
+            heap.start(measureFrom - System.nanoTime());
+        }
+        heap.stop();
+
+        Result result = new Result(settings.duration, heap);
+        for (Future<Worker> future : futures) {
+            try {
+                result.merge(future.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                logger.log(Level.SEVERE, "Worker failed", e.getCause());
+            }
+        }
+        return result;
+    }
+
+    private static class Worker implements Callable<Worker> {
+        private final ProductManager pm;
+        private final ReadWriteLock lock;
+        private final Settings settings;
+        private final ZipfianSampler products;
+        private final int[] hotIds;
+        private final SplittableRandom random;
+        private final long measureFrom;
+        private final long deadline;
+
+        private final Map<Operation, LatencyHistogram> latencies = new EnumMap<>(Operation.class);
+        private long errors;
+
+        private Worker(ProductManager pm, ReadWriteLock lock, Settings settings,
+                       ZipfianSampler products, int[] hotIds, SplittableRandom random,
+                       long measureFrom, long deadline) {
+            this.pm = pm;
+            this.lock = lock;
+            this.settings = settings;
+            this.products = products;
+            this.hotIds = hotIds;
+            this.random = random;
+            this.measureFrom = measureFrom;
+            this.deadline = deadline;
+            for (Operation operation : Operation.values()) {
+                latencies.put(operation, new LatencyHistogram());
+            }
+        }
+
+        @Override
+        public Worker call() {
+            long start;
+            while ((start = System.nanoTime()) < deadline) {
+                Operation operation = nextOperation();
+                try {
+                    execute(operation);
+                } catch (ProductManagerException e) {
+                    errors++;
+                }
+                long elapsed = System.nanoTime() - start;
+                if (start >= measureFrom) {
+                    latencies.get(operation).record(elapsed);
+                }
+            }
+            return this;
+        }
+
+        private Operation nextOperation() {
+            if (random.nextDouble() >= settings.readRatio) {
+                return Operation.REVIEW;
+            }
+            return (random.nextDouble() < settings.reportRatio)
+                    ? Operation.REPORT : Operation.FIND;
+        }
+
+        private void execute(Operation operation) throws ProductManagerException {
+            switch (operation) {
+                case FIND -> {
+                    int id = hotIds[products.next(random)];
+                    lock.readLock().lock();
+                    try {
+                        pm.findProduct(id);
+                    } finally {
+                        lock.readLock().unlock();
+                    }
+                }
+                case REVIEW -> {
+                    int id = hotIds[products.next(random)];
+                    Rating rating = Rateable.convert(random.nextInt(1, 6));
+                    String comments = COMMENTS[random.nextInt(COMMENTS.length)];
+                    lock.writeLock().lock();
+                    try {
+                        pm.reviewProduct(pm.findProduct(id), rating, comments);
+                    } finally {
+                        lock.writeLock().unlock();
+                    }
+                }
+                case REPORT -> {
+                    String languageTag = settings.nextLocale(random);
+                    lock.writeLock().lock();
+                    try {
+                        pm.changeLocale(languageTag);
+                        pm.getDiscounts();
+                    } finally {
+                        lock.writeLock().unlock();
+                    }
+                }
+            }
+        }
+    }
+
+    private static class Result {
+        private final Duration duration;
+        private final HeapSampler heap;
+        private final Map<Operation, LatencyHistogram> latencies = new EnumMap<>(Operation.class);
+        private long errors;
+
+        private Result(Duration duration, HeapSampler heap) {
+            this.duration = duration;
+            this.heap = heap;
+            for (Operation operation : Operation.values()) {
+                latencies.put(operation, new LatencyHistogram());
+            }
+        }
+
+        private void merge(Worker worker) {
+            worker.latencies.forEach((operation, histogram) ->
+                    latencies.get(operation).merge(histogram));
+            errors += worker.errors;
+        }
+
+        @Override
+        public String toString() {
+            double seconds = duration.toNanos() / 1e9;
+            StringBuilder txt = new StringBuilder();
+            long total = 0;
+            txt.append(String.format("%-8s %12s %12s %10s %10s %10s %10s%n",
+                    "op", "count", "ops/s", "p50 us", "p99 us", "p999 us", "max us"));
+            for (Map.Entry<Operation, LatencyHistogram> entry : latencies.entrySet()) {
+                LatencyHistogram histogram = entry.getValue();
+                total += histogram.getCount();
+                txt.append(String.format("%-8s %12d %12.1f %10.1f %10.1f %10.1f %10.1f%n",
+                        entry.getKey(),
+                        histogram.getCount(),
+                        histogram.getCount() / seconds,
+                        histogram.percentile(0.50) / 1e3,
+                        histogram.percentile(0.99) / 1e3,
+                        histogram.percentile(0.999) / 1e3,
+                        histogram.getMax() / 1e3));
+            }
+            txt.append(String.format("total %d ops, %.1f ops/s, %d errors%n",
+                    total, total / seconds, errors));
+            txt.append(heap);
+            return txt.toString();
+        }
+    }
+
+    /**
+     * Log-linear histogram of latencies in nanoseconds with a relative
+     * error of about 3%, so that long soak runs use constant memory.
+     **/
+    private static class LatencyHistogram {
+        private static final int SUB_BUCKET_BITS = 5;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+        private final long[] counts = new long[64 * SUB_BUCKETS];
+        private long count;
+        private long max;
+
+        private void record(long nanos) {
+            counts[index(nanos)]++;
+            count++;
+            max = Math.max(max, nanos);
+        }
+
+        private void merge(LatencyHistogram other) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += other.counts[i];
+            }
+            count += other.count;
+            max = Math.max(max, other.max);
+        }
+
+        private long getCount() {
+            return count;
+        }
+
+        private long getMax() {
+            return max;
+        }
+
+        /**
+         * Returns the upper bound of the bucket holding the given percentile
+         * @param fraction percentile as a fraction, e.g. 0.99
+         * @return latency in nanoseconds, or 0 when nothing was recorded
+         **/
+        private long percentile(double fraction) {
+            long target = (long) Math.ceil(fraction * count);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= target && seen > 0) {
+                    return Math.min(upperBound(i), max);
+                }
+            }
+            return 0;
+        }
+
+        private static int index(long nanos) {
+            if (nanos < SUB_BUCKETS) {
+                return (int) Math.max(nanos, 0);
+            }
+            int shift = 63 - Long.numberOfLeadingZeros(nanos) - SUB_BUCKET_BITS;
+            int sub = (int) (nanos >>> shift) & (SUB_BUCKETS - 1);
+            return (shift + 1) * SUB_BUCKETS + sub;
+        }
+
+        private static long upperBound(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int shift = index / SUB_BUCKETS - 1;
+            long lower = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+            return lower + (1L << shift) - 1;
+        }
+    }
+
+    /**
+     * Picks product indexes in {@code [0, size)} so that index {@code k}
+     * is chosen with a probability proportional to {@code 1 / (k + 1)^skew}
+     **/
+    private static class ZipfianSampler {
+        private final double[] cumulative;
+
+        private ZipfianSampler(int size, double skew) {
+            cumulative = new double[size];
+            double sum = 0;
+            for (int k = 0; k < size; k++) {
+                sum += 1 / Math.pow(k + 1, skew);
+                cumulative[k] = sum;
+            }
+            for (int k = 0; k < size; k++) {
+                cumulative[k] /= sum;
+            }
+        }
+
+        private int next(SplittableRandom random) {
+            int index = Arrays.binarySearch(cumulative, random.nextDouble());
+            index = (index < 0) ? -index - 1 : index;
+            return Math.min(index, cumulative.length - 1);
+        }
+    }
+
+    private static class HeapSampler {
+        private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        private final List<GarbageCollectorMXBean> collectors =
+                ManagementFactory.getGarbageCollectorMXBeans();
+        private final ScheduledExecutorService scheduler =
+                Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread thread = new Thread(r, "heap-sampler");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+
+        private volatile long startUsed;
+        private volatile long peakUsed;
+        private volatile long lastUsed;
+        private long[] startCounts;
+        private long[] startTimes;
+        private long[] endCounts;
+        private long[] endTimes;
+
+        private void start(long delayNanos) {
+            scheduler.schedule(this::begin, Math.max(delayNanos, 0), TimeUnit.NANOSECONDS);
+            scheduler.scheduleAtFixedRate(this::sample,
+                    Math.max(delayNanos, 0), TimeUnit.SECONDS.toNanos(1), TimeUnit.NANOSECONDS);
+        }
+
+        private void begin() {
+            startUsed = memory.getHeapMemoryUsage().getUsed();
+            startCounts = collectors.stream().mapToLong(GarbageCollectorMXBean::getCollectionCount).toArray();
+            startTimes = collectors.stream().mapToLong(GarbageCollectorMXBean::getCollectionTime).toArray();
+        }
+
+        private void sample() {
+            lastUsed = memory.getHeapMemoryUsage().getUsed();
+            peakUsed = Math.max(peakUsed, lastUsed);
+        }
+
+        private void stop() {
+            scheduler.shutdownNow();
+            try {
+                scheduler.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            sample();
+            endCounts = collectors.stream().mapToLong(GarbageCollectorMXBean::getCollectionCount).toArray();
+            endTimes = collectors.stream().mapToLong(GarbageCollectorMXBean::getCollectionTime).toArray();
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder txt = new StringBuilder();
+            txt.append(String.format("heap used: start %d MB, end %d MB, peak %d MB, max %d MB%n",
+                    startUsed >> 20, lastUsed >> 20, peakUsed >> 20,
+                    memory.getHeapMemoryUsage().getMax() >> 20));
+            for (int i = 0; i < collectors.size(); i++) {
+                long collections = endCounts[i] - (startCounts == null ? 0 : startCounts[i]);
+                long time = endTimes[i] - (startTimes == null ? 0 : startTimes[i]);
+                txt.append(String.format("gc %s: %d collections, %d ms%n",
+                        collectors.get(i).getName(), collections, time));
+            }
+            return txt.toString();
+        }
+    }
+
+    private static class Settings {
+        private int catalogSize;
+        private double foodRatio;
+        private double reviewSkew;
+        private double readRatio;
+        private double reportRatio;
+        private String[] locales;
+        private double[] localeWeights;
+        private int threads;
+        private boolean virtualThreads;
+        private Duration warmup;
+        private Duration duration;
+        private long seed;
+
+        private static Settings load(String[] args) {
+            ResourceBundle defaults = ResourceBundle.getBundle("labs.pm.apps.loadgen");
+            Map<String, String> values = new HashMap<>();
+            for (String key : defaults.keySet()) {
+                values.put(key, defaults.getString(key));
+            }
+            for (String arg : args) {
+                int separator = arg.indexOf('=');
+                if (separator < 0 || !values.containsKey(arg.substring(0, separator))) {
+                    throw new IllegalArgumentException("Unknown setting " + arg);
+                }
+                values.put(arg.substring(0, separator), arg.substring(separator + 1));
+            }
+
+            Settings settings = new Settings();
+            settings.catalogSize = Integer.parseInt(values.get("catalog.size"));
+            settings.foodRatio = Double.parseDouble(values.get("catalog.food.ratio"));
+            settings.reviewSkew = Double.parseDouble(values.get("review.skew"));
+            settings.readRatio = Double.parseDouble(values.get("read.ratio"));
+            settings.reportRatio = Double.parseDouble(values.get("report.ratio"));
+            settings.threads = Integer.parseInt(values.get("threads"));
+            settings.virtualThreads = Boolean.parseBoolean(values.get("threads.virtual"));
+            settings.warmup = Duration.parse(values.get("warmup"));
+            settings.duration = Duration.parse(values.get("duration"));
+            settings.seed = Long.parseLong(values.get("seed"));
+            settings.parseLocales(values.get("locales"));
+            if (settings.catalogSize < 1 || settings.threads < 1) {
+                throw new IllegalArgumentException("catalog.size and threads must be positive");
+            }
+            checkRatio("catalog.food.ratio", settings.foodRatio);
+            checkRatio("read.ratio", settings.readRatio);
+            checkRatio("report.ratio", settings.reportRatio);
+            if (!(settings.reviewSkew >= 0) || Double.isInfinite(settings.reviewSkew)) {
+                throw new IllegalArgumentException("review.skew must not be negative");
+            }
+            if (settings.warmup.isNegative()) {
+                throw new IllegalArgumentException("warmup must not be negative");
+            }
+            if (settings.duration.isZero() || settings.duration.isNegative()) {
+                throw new IllegalArgumentException("duration must be positive");
+            }
+            return settings;
+        }
+
+        private static void checkRatio(String key, double value) {
+            if (!(value >= 0 && value <= 1)) {
+                throw new IllegalArgumentException(key + " must be between 0 and 1");
+            }
+        }
+
+        /**
+         * Parses a weighted locale mix such as {@code en-GB:4,fr-FR:1}
+         **/
+        private void parseLocales(String mix) {
+            String[] entries = mix.split(",");
+            locales = new String[entries.length];
+            localeWeights = new double[entries.length];
+            double sum = 0;
+            for (int i = 0; i < entries.length; i++) {
+                String[] entry = entries[i].trim().split(":");
+                if (!ProductManager.getSupportedLocals().contains(entry[0])) {
+                    throw new IllegalArgumentException("Unsupported locale " + entry[0]);
+                }
+                double weight = (entry.length > 1) ? Double.parseDouble(entry[1]) : 1;
+                if (!(weight >= 0) || Double.isInfinite(weight)) {
+                    throw new IllegalArgumentException("Locale weight must not be negative " + entries[i]);
+                }
+                locales[i] = entry[0];
+                sum += weight;
+                localeWeights[i] = sum;
+            }
+            if (sum <= 0) {
+                throw new IllegalArgumentException("At least one locale weight must be positive");
+            }
+            for (int i = 0; i < localeWeights.length; i++) {
+                localeWeights[i] /= sum;
+            }
+        }
+
+        private String nextLocale(SplittableRandom random) {
+            double u = random.nextDouble();
+            for (int i = 0; i < localeWeights.length - 1; i++) {
+                if (u < localeWeights[i]) {
+                    return locales[i];
+                }
+            }
+            return locales[locales.length - 1];
+        }
+
+        @Override
+        public String toString() {
+            return String.format("catalog %d products (%.0f%% food), skew %.2f, reads %.0f%%, " +
+                            "reports %.1f%% of reads, %d %s threads, warmup %s, duration %s, locales %s",
+                    catalogSize, foodRatio * 100, reviewSkew, readRatio * 100, reportRatio * 100,
+                    threads, virtualThreads ? "virtual" : "platform", warmup, duration,
+                    Arrays.toString(locales));
+        }
+    }
+}
@@ -0,0 +1,518 @@
+/*
+ * License along with this program.
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Copyright (c)  2024.
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * If not, see<http://www.gnu.org/licenses/>
+ */
+
+package labs.pm.data;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.stream.IntStream;
+
+/**
+ * {@code CatalogAnalytics} class represents grouped aggregations over the
+ * products and review counts held by a {@link ProductManager}.
+ * <br>
+ * The product manager keeps a column per product attribute up to date as
+ * products are created and reviewed, so queries always see the current
+ * catalog without copying it. Every aggregation walks an
+ * {@link IntStream} of column indexes, so parallel runs split evenly and
+ * accumulate into primitive arrays without boxing or
+ * {@link java.math.BigDecimal BigDecimal} arithmetic per product.
+ * <br>
+ * Prices are stored as unscaled longs at the largest scale in the
+ * catalog, so price sums are exact and parallel and
+ * {@link #sequential() sequential} results are identical. Once a price
+ * does not fit that representation, prices are summed as
+ * {@code BigDecimal} instead, with the same results.
+ * <br>
+ * Like {@code ProductManager}, queries must not run while the catalog
+ * is being changed.
+ * @version 4.0
+ * @author marwa
+ **/
+public final class CatalogAnalytics {
+    private static final int RATINGS = Rating.values().length;
+
+    private static final byte FOOD = 0;
+    private static final byte DRINK = 1;
+
+    /**
+     * Best before day stored for drinks, which have no date of their own
+     **/
+    private static final long NO_DATE = Long.MIN_VALUE;
+
+    /**
+     * Widest range of best before days counted in a flat array,
+     * wider ranges are counted by sorting the days instead
+     **/
+    private static final int MAX_DAY_RANGE = 1 << 16;
+
+    /**
+     * Most decimal digits of an unscaled price that always fit in a long
+     **/
+    private static final int MAX_PRICE_DIGITS = 18;
+
+    /**
+     * Top-k requests for more than this fraction of the catalog
+     * sort every product instead of keeping a heap
+     **/
+    private static final int SORT_ALL_FRACTION = 16;
+
+    private final Columns columns;
+    private final boolean parallel;
+
+    CatalogAnalytics() {
+        this(new Columns(), true);
+    }
+
+    private CatalogAnalytics(Columns columns, boolean parallel) {
+        this.columns = columns;
+        this.parallel = parallel;
+    }
+
+    /**
+     * Adds a newly created product to the columns
+     **/
+    void add(Product product) {
+        columns.add(product);
+    }
+
+    /**
+     * Records a product replaced after a review
+     * @param reviewCount number of reviews of the product, including the new one
+     **/
+    void update(Product product, int reviewCount) {
+        columns.update(product, reviewCount);
+    }
+
+    /**
+     * @return analytics over the same catalog that run on the calling thread
+     **/
+    public CatalogAnalytics sequential() {
+        return new CatalogAnalytics(columns, false);
+    }
+
+    /**
+     * @return analytics over the same catalog that run in the common pool
+     **/
+    public CatalogAnalytics parallel() {
+        return new CatalogAnalytics(columns, true);
+    }
+
+    /**
+     * Calculates the average product price for each rating
+     * @return average prices rounded to two decimal places,
+     * ratings without products are left out
+     **/
+    public Map<Rating, BigDecimal> getAveragePriceByRating() {
+        BigDecimal[] sums = new BigDecimal[RATINGS];
+        long[] totals = sumPricesByRating();
+        if (totals != null) {
+            for (int rating = 0; rating < RATINGS; rating++) {
+                sums[rating] = BigDecimal.valueOf(totals[rating], columns.priceScale);
+            }
+        } else {
+            totals = countByRating();
+            sums = sumBigDecimalPricesByRating();
+        }
+        Map<Rating, BigDecimal> averages = new EnumMap<>(Rating.class);
+        for (Rating rating : Rating.values()) {
+            long count = totals[RATINGS + rating.ordinal()];
+            if (count > 0) {
+                averages.put(rating, sums[rating.ordinal()]
+                        .divide(BigDecimal.valueOf(count), 2, RoundingMode.HALF_UP));
+            }
+        }
+        return averages;
+    }
+
+    /**
+     * @return unscaled price sums followed by product counts per rating,
+     * or {@code null} when the prices or their sums do not fit in a long
+     **/
+    private long[] sumPricesByRating() {
+        if (!columns.exactPrices) {
+            return null;
+        }
+        byte[] ratings = columns.ratings;
+        long[] prices = columns.prices;
+        try {
+            return indexes().collect(
+                    () -> new long[RATINGS * 2],
+                    (acc, i) -> {
+                        int rating = ratings[i];
+                        acc[rating] = Math.addExact(acc[rating], prices[i]);
+                        acc[RATINGS + rating]++;
+                    },
+                    CatalogAnalytics::addExact);
+        } catch (ArithmeticException e) {
+            return null;
+        }
+    }
+
+    private long[] countByRating() {
+        byte[] ratings = columns.ratings;
+        return indexes().collect(
+                () -> new long[RATINGS * 2],
+                (acc, i) -> acc[RATINGS + ratings[i]]++,
+                CatalogAnalytics::add);
+    }
+
+    private BigDecimal[] sumBigDecimalPricesByRating() {
+        byte[] ratings = columns.ratings;
+        Product[] products = columns.products;
+        return indexes().collect(
+                () -> {
+                    BigDecimal[] acc = new BigDecimal[RATINGS];
+                    Arrays.fill(acc, BigDecimal.ZERO);
+                    return acc;
+                },
+                (acc, i) -> acc[ratings[i]] = acc[ratings[i]].add(products[i].getPrice()),
+                (target, source) -> {
+                    for (int rating = 0; rating < RATINGS; rating++) {
+                        target[rating] = target[rating].add(source[rating]);
+                    }
+                });
+    }
+
+    /**
+     * Counts reviews for each kind of product
+     * @return number of reviews keyed by {@code Food.class} and {@code Drink.class}
+     **/
+    public Map<Class<? extends Product>, Long> getReviewCountByType() {
+        byte[] types = columns.types;
+        int[] reviewCounts = columns.reviewCounts;
+        long[] counts = indexes().collect(
+                () -> new long[2],
+                (acc, i) -> acc[types[i]] += reviewCounts[i],
+                CatalogAnalytics::add);
+        return Map.of(Food.class, counts[FOOD], Drink.class, counts[DRINK]);
+    }
+
+    /**
+     * Counts food products by best before date.
+     * Drinks are left out as they are always assumed to expire today.
+     * @return number of products per date in ascending date order
+     **/
+    public SortedMap<LocalDate, Long> getBestBeforeDistribution() {
+        long[] bestBefore = columns.bestBefore;
+        long[] range = indexes().collect(
+                () -> new long[]{Long.MAX_VALUE, Long.MIN_VALUE},
+                (acc, i) -> {
+                    if (bestBefore[i] != NO_DATE) {
+                        acc[0] = Math.min(acc[0], bestBefore[i]);
+                        acc[1] = Math.max(acc[1], bestBefore[i]);
+                    }
+                },
+                (target, source) -> {
+                    target[0] = Math.min(target[0], source[0]);
+                    target[1] = Math.max(target[1], source[1]);
+                });
+        SortedMap<LocalDate, Long> distribution = new TreeMap<>();
+        if (range[0] > range[1]) {
+            return distribution;
+        }
+        long first = range[0];
+        if (range[1] - first >= MAX_DAY_RANGE) {
+            long[] days = indexes()
+                    .filter(i -> bestBefore[i] != NO_DATE)
+                    .mapToLong(i -> bestBefore[i])
+                    .toArray();
+            sort(days);
+            for (int start = 0, end; start < days.length; start = end) {
+                end = start + 1;
+                while (end < days.length && days[end] == days[start]) {
+                    end++;
+                }
+                distribution.put(LocalDate.ofEpochDay(days[start]), (long) (end - start));
+            }
+            return distribution;
+        }
+        long[] counts = indexes().collect(
+                () -> new long[(int) (range[1] - first + 1)],
+                (acc, i) -> {
+                    if (bestBefore[i] != NO_DATE) {
+                        acc[(int) (bestBefore[i] - first)]++;
+                    }
+                },
+                CatalogAnalytics::add);
+        for (int day = 0; day < counts.length; day++) {
+            if (counts[day] > 0) {
+                distribution.put(LocalDate.ofEpochDay(first + day), counts[day]);
+            }
+        }
+        return distribution;
+    }
+
+    /**
+     * Finds the products with the most reviews, ties are broken by
+     * the lowest product id
+     * @param limit maximum number of products to return
+     * @return products in descending order of review count
+     **/
+    public List<Product> getMostReviewed(int limit) {
+        if (limit <= 0) {
+            return List.of();
+        }
+        Product[] products = columns.products;
+        int[] ids = columns.ids;
+        int[] reviewCounts = columns.reviewCounts;
+        int count = columns.size;
+        int[] ranked;
+        if (limit > count / SORT_ALL_FRACTION) {
+            ranked = rankAll(ids, reviewCounts);
+        } else {
+            ranked = indexes().collect(
+                    () -> new TopReviewed(Math.min(limit, count), ids, reviewCounts),
+                    TopReviewed::offer,
+                    TopReviewed::merge).drain();
+        }
+        int size = Math.min(limit, ranked.length);
+        List<Product> result = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            result.add(products[ranked[i]]);
+        }
+        return result;
+    }
+
+    /**
+     * Ranks every product with two primitive sorts: by id, then by
+     * review count over the id order, each packed into a long key
+     * @return product indexes from the highest to the lowest ranked
+     **/
+    private int[] rankAll(int[] ids, int[] reviewCounts) {
+        long[] byId = new long[columns.size];
+        indexes().forEach(i -> byId[i] = (long) ids[i] << 32 | i);
+        sort(byId);
+        long[] byCount = new long[byId.length];
+        indexes().forEach(position -> byCount[position] =
+                (long) (Integer.MAX_VALUE - reviewCounts[(int) byId[position]]) << 32 | position);
+        sort(byCount);
+        int[] ranked = new int[byId.length];
+        indexes().forEach(rank -> ranked[rank] = (int) byId[(int) byCount[rank]]);
+        return ranked;
+    }
+
+    private void sort(long[] keys) {
+        if (parallel) {
+            Arrays.parallelSort(keys);
+        } else {
+            Arrays.sort(keys);
+        }
+    }
+
+    private IntStream indexes() {
+        IntStream indexes = IntStream.range(0, columns.size);
+        return parallel ? indexes.parallel() : indexes;
+    }
+
+    private static void add(long[] target, long[] source) {
+        for (int i = 0; i < target.length; i++) {
+            target[i] += source[i];
+        }
+    }
+
+    private static void addExact(long[] target, long[] source) {
+        for (int i = 0; i < target.length; i++) {
+            target[i] = Math.addExact(target[i], source[i]);
+        }
+    }
+
+    /**
+     * Product attributes stored by column, one slot per product id
+     **/
+    private static final class Columns {
+        private final Map<Product, Integer> slots = new HashMap<>();
+        private Product[] products = new Product[16];
+        private int[] ids = new int[16];
+        private byte[] types = new byte[16];
+        private byte[] ratings = new byte[16];
+        private int[] reviewCounts = new int[16];
+        private long[] bestBefore = new long[16];
+        private long[] prices = new long[16];
+        private int size;
+
+        private int priceScale;
+        private int priceIntegerDigits;
+        private boolean exactPrices = true;
+
+        private void add(Product product) {
+            if (size == products.length) {
+                grow(size * 2);
+            }
+            int slot = size++;
+            slots.put(product, slot);
+            products[slot] = product;
+            ids[slot] = product.getId();
+            ratings[slot] = (byte) product.getRating().ordinal();
+            switch (product) {
+                case Food food -> {
+                    types[slot] = FOOD;
+                    bestBefore[slot] = (food.getBestBefore() == null)
+                            ? NO_DATE : food.getBestBefore().toEpochDay();
+                }
+                case Drink drink -> {
+                    types[slot] = DRINK;
+                    bestBefore[slot] = NO_DATE;
+                }
+            }
+            addPrice(slot, product.getPrice());
+        }
+
+        private void update(Product product, int reviewCount) {
+            Integer slot = slots.get(product);
+            if (slot != null) {
+                products[slot] = product;
+                ratings[slot] = (byte) product.getRating().ordinal();
+                reviewCounts[slot] = reviewCount;
+            }
+        }
+
+        /**
+         * Stores the unscaled price at the common scale, rescaling the
+         * prices already stored when this one has more decimal places
+         **/
+        private void addPrice(int slot, BigDecimal price) {
+            if (!exactPrices) {
+                return;
+            }
+            int scale = Math.max(priceScale, price.scale());
+            int integerDigits = Math.max(priceIntegerDigits, price.precision() - price.scale());
+            if (integerDigits + scale > MAX_PRICE_DIGITS) {
+                exactPrices = false;
+                return;
+            }
+            if (scale > priceScale) {
+                long factor = 1;
+                for (int i = priceScale; i < scale; i++) {
+                    factor *= 10;
+                }
+                for (int i = 0; i < slot; i++) {
+                    prices[i] *= factor;
+                }
+                priceScale = scale;
+            }
+            priceIntegerDigits = integerDigits;
+            prices[slot] = price.setScale(priceScale).unscaledValue().longValue();
+        }
+
+        private void grow(int capacity) {
+            products = Arrays.copyOf(products, capacity);
+            ids = Arrays.copyOf(ids, capacity);
+            types = Arrays.copyOf(types, capacity);
+            ratings = Arrays.copyOf(ratings, capacity);
+            reviewCounts = Arrays.copyOf(reviewCounts, capacity);
+            bestBefore = Arrays.copyOf(bestBefore, capacity);
+            prices = Arrays.copyOf(prices, capacity);
+        }
+    }
+
+    /**
+     * Bounded min-heap of product indexes whose root is the lowest ranked
+     * one, ranked by review count descending and product id ascending.
+     * The heap grows on demand, so small leaves of a parallel run do not
+     * allocate the full limit.
+     **/
+    private static final class TopReviewed {
+        private final int limit;
+        private final int[] ids;
+        private final int[] reviewCounts;
+        private int[] heap;
+        private int size;
+
+        private TopReviewed(int limit, int[] ids, int[] reviewCounts) {
+            this.limit = limit;
+            this.ids = ids;
+            this.reviewCounts = reviewCounts;
+            heap = new int[Math.min(limit, 16)];
+        }
+
+        private void offer(int index) {
+            if (size < limit) {
+                if (size == heap.length) {
+                    heap = Arrays.copyOf(heap, Math.min(limit, size * 2));
+                }
+                heap[size] = index;
+                siftUp(size++);
+            } else if (limit > 0 && ranksBefore(index, heap[0])) {
+                heap[0] = index;
+                siftDown(0);
+            }
+        }
+
+        private void merge(TopReviewed other) {
+            for (int i = 0; i < other.size; i++) {
+                offer(other.heap[i]);
+            }
+        }
+
+        /**
+         * Empties the heap
+         * @return product indexes from the highest to the lowest ranked
+         **/
+        private int[] drain() {
+            int[] sorted = new int[size];
+            while (size > 0) {
+                sorted[size - 1] = heap[0];
+                heap[0] = heap[--size];
+                siftDown(0);
+            }
+            return sorted;
+        }
+
+        private void siftUp(int position) {
+            int index = heap[position];
+            while (position > 0) {
+                int parent = (position - 1) / 2;
+                if (!ranksBefore(heap[parent], index)) {
+                    break;
+                }
+                heap[position] = heap[parent];
+                position = parent;
+            }
+            heap[position] = index;
+        }
+
+        private void siftDown(int position) {
+            if (size == 0) {
+                return;
+            }
+            int index = heap[position];
+            int child;
+            while ((child = position * 2 + 1) < size) {
+                if (child + 1 < size && ranksBefore(heap[child], heap[child + 1])) {
+                    child++;
+                }
+                if (!ranksBefore(index, heap[child])) {
+                    break;
+                }
+                heap[position] = heap[child];
+                position = child;
+            }
+            heap[position] = index;
+        }
+
+        private boolean ranksBefore(int a, int b) {
+            return reviewCounts[a] != reviewCounts[b]
+                    ? reviewCounts[a] > reviewCounts[b]
+                    : ids[a] < ids[b];
+        }
+    }
+}
@@ -43,6 +43,8 @@ public class ProductManager {
 
     private Map<Product, List<Review>> products = new HashMap<>();
 
+    private final CatalogAnalytics analytics = new CatalogAnalytics();
+
     private ResourceBundle config =
             ResourceBundle.getBundle("labs.pm.data.config");
 
@@ -87,13 +89,17 @@ public class ProductManager {
     public Product createProduct(int id, String name, BigDecimal price,
                                  Rating rating, LocalDate bestBefore) {
         Product product = new Food(id, name, price, rating, bestBefore);
-        products.putIfAbsent(product, new ArrayList<>());
+        if (products.putIfAbsent(product, new ArrayList<>()) == null) {
+            analytics.add(product);
+        }
         return product;
     }
 
     public Product createProduct(int id, String name, BigDecimal price, Rating rating) {
         Product product = new Drink(id, name, price, rating);
-        products.putIfAbsent(product, new ArrayList<>());
+        if (products.putIfAbsent(product, new ArrayList<>()) == null) {
+            analytics.add(product);
+        }
         return product;
     }
 
@@ -130,6 +136,7 @@ public class ProductManager {
                                         .average()
                                         .orElse(0))));
         products.put(product, reviews);
+        analytics.update(product, reviews.size());
         return product;
     }
 
@@ -217,6 +224,17 @@ public class ProductManager {
 
     }
 
+    /**
+     * Gives access to analytics over the catalog.
+     * The returned object reads columns that are kept up to date as
+     * products are created and reviewed, so it never goes stale.
+     * @return parallel analytics over the current products and reviews
+     **/
+    public CatalogAnalytics getAnalytics() {
+
+        return analytics;
+    }
+
     private static class ResourceFormatter {
         private Locale locale;
 